@@ -0,0 +1,119 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of adding, training and classifying with synthetic data of different width, mix of nominal and
+ * numeric attributes and number of training rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassifierBenchmark
+{
+    @Param({"4", "16", "64"})
+    public int attributes;
+
+    @Param({"0.0", "0.5", "1.0"})
+    public double nominal_ratio;
+
+    @Param({"150", "1500", "15000"})
+    public int train_size;
+
+    private Workload workload;
+    private Object receiving;       // Classifier that receives the instances in addToClassifier
+    private Object trained;
+    private Object uncached;        // Same as trained, without prediction cache
+    private int next_row;
+    private int next_query;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        Schema schema = Schema.synthetic(attributes, nominal_ratio);
+        workload = new Workload(schema, schema.generate(train_size, 42));
+        receiving = schema.makeClassifier();
+        trained = workload.trainedClassifier();
+        uncached = workload.trainedClassifier();
+        Extension.setPredictionCache(uncached, 0);
+    }
+
+    /**
+     * Classifier with all the training rows and a model that is out of date.
+     */
+    @State(Scope.Thread)
+    public static class Untrained
+    {
+        Object classifier;
+
+        @Setup(Level.Invocation)
+        public void refill(ClassifierBenchmark benchmark) throws Throwable
+        {
+            if (classifier == null)
+                classifier = benchmark.workload.schema.makeClassifier();
+            benchmark.workload.refill(classifier);
+        }
+    }
+
+    /**
+     * addto-classifier. The classifier is cleared every train_size rows so it does not grow without bound.
+     */
+    @Benchmark
+    public void addToClassifier() throws Throwable
+    {
+        if (next_row == train_size)
+        {
+            Extension.clear(receiving);
+            next_row = 0;
+        }
+        Extension.addTo(receiving, workload.instances.get(next_row++));
+    }
+
+    /**
+     * train-classifier
+     */
+    @Benchmark
+    public void trainClassifier(Untrained untrained) throws Throwable
+    {
+        Extension.train(untrained.classifier);
+    }
+
+    /**
+     * classify. The queries repeat every train_size, so once warm most of them are answered by the prediction
+     * cache.
+     */
+    @Benchmark
+    public String classify() throws Throwable
+    {
+        if (next_query == train_size)
+            next_query = 0;
+        return Extension.classify(trained, workload.queries.get(next_query++));
+    }
+
+    /**
+     * classify without the prediction cache, so every query goes through the tree.
+     */
+    @Benchmark
+    public String classifyUncached() throws Throwable
+    {
+        if (next_query == train_size)
+            next_query = 0;
+        return Extension.classify(uncached, workload.queries.get(next_query++));
+    }
+}
@@ -0,0 +1,148 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.nlogo.core.LogoList;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+
+/**
+ * Calls to the classes of the extension. They are in the default package, which can not be imported and where
+ * JMH does not accept benchmarks, so their methods are looked up once here. The handles are constants, so the
+ * JIT inlines them as if they were direct calls.
+ */
+final class Extension
+{
+    private static final Object REGISTRY;           // Registry of the objects, as the one of a workspace
+
+    private static final MethodHandle NEW_INSTANCE;
+    private static final MethodHandle GET_WEKA_INSTANCE;
+    private static final MethodHandle NEW_CLASSIFIER;
+    private static final MethodHandle ATTRIBUTES;
+    private static final MethodHandle ADD;
+    private static final MethodHandle ADD_TO;
+    private static final MethodHandle TRAIN;
+    private static final MethodHandle CLEAR;
+    private static final MethodHandle CLASSIFY;
+    private static final MethodHandle SET_PREDICTION_CACHE;
+
+    static
+    {
+        try
+        {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> instance = Class.forName("DecisionTreeExtension$TableInstance");
+            Class<?> classifier = Class.forName("DecisionTreeExtension$J48Classifier");
+            Class<?> registry = Class.forName("DecisionTreeExtension$Registry");
+
+            REGISTRY = registry.getConstructor().newInstance();
+            NEW_INSTANCE = generic(MethodHandles.insertArguments(lookup.findConstructor(instance, MethodType.methodType(void.class, registry)), 0, REGISTRY));
+            GET_WEKA_INSTANCE = generic(lookup.findVirtual(instance, "getWekaInstance", MethodType.methodType(Instance.class, ArrayList.class)));
+            NEW_CLASSIFIER = generic(MethodHandles.insertArguments(lookup.findConstructor(classifier, MethodType.methodType(void.class, registry, LogoList.class, LogoList.class, int.class)), 0, REGISTRY));
+            ATTRIBUTES = generic(lookup.findVirtual(classifier, "attributes", MethodType.methodType(ArrayList.class)));
+            ADD = generic(lookup.findVirtual(classifier, "add", MethodType.methodType(void.class, Instance.class)));
+            ADD_TO = generic(lookup.findVirtual(classifier, "add", MethodType.methodType(void.class, instance)));
+            TRAIN = generic(lookup.findVirtual(classifier, "train", MethodType.methodType(void.class)));
+            CLEAR = generic(lookup.findVirtual(classifier, "setup", MethodType.methodType(void.class)));
+            CLASSIFY = generic(lookup.findVirtual(classifier, "classify", MethodType.methodType(String.class, instance)));
+            SET_PREDICTION_CACHE = generic(lookup.findVirtual(classifier, "setPredictionCacheSize", MethodType.methodType(void.class, int.class)));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Extension()
+    {
+    }
+
+    /**
+     * Changes the types of the handle to Object, so it can be called with invokeExact without naming the
+     * classes of the extension.
+     */
+    private static MethodHandle generic(MethodHandle handle)
+    {
+        MethodType type = handle.type().generic();
+        if (handle.type().returnType() == void.class)
+            type = type.changeReturnType(void.class);
+        return handle.asType(type);
+    }
+
+    /**
+     * Same as make-instance.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<Object, Object> makeInstance() throws Throwable
+    {
+        return (Map<Object, Object>) (Object) NEW_INSTANCE.invokeExact();
+    }
+
+    static Instance getWekaInstance(Map<Object, Object> instance, ArrayList<Attribute> attributes) throws Throwable
+    {
+        return (Instance) (Object) GET_WEKA_INSTANCE.invokeExact((Object) instance, (Object) attributes);
+    }
+
+    /**
+     * Same as make-classifier.
+     */
+    static Object makeClassifier(LogoList attribute_names, LogoList attribute_types, int class_index) throws Throwable
+    {
+        return (Object) NEW_CLASSIFIER.invokeExact((Object) attribute_names, (Object) attribute_types, (Object) class_index);
+    }
+
+    @SuppressWarnings("unchecked")
+    static ArrayList<Attribute> attributes(Object classifier) throws Throwable
+    {
+        return (ArrayList<Attribute>) (Object) ATTRIBUTES.invokeExact(classifier);
+    }
+
+    static void add(Object classifier, Instance instance) throws Throwable
+    {
+        ADD.invokeExact(classifier, (Object) instance);
+    }
+
+    /**
+     * Same as addto-classifier.
+     */
+    static void addTo(Object classifier, Map<Object, Object> instance) throws Throwable
+    {
+        ADD_TO.invokeExact(classifier, (Object) instance);
+    }
+
+    /**
+     * Same as train-classifier.
+     */
+    static void train(Object classifier) throws Throwable
+    {
+        TRAIN.invokeExact(classifier);
+    }
+
+    /**
+     * Same as clear-classifier.
+     */
+    static void clear(Object classifier) throws Throwable
+    {
+        CLEAR.invokeExact(classifier);
+    }
+
+    /**
+     * Same as set-prediction-cache.
+     */
+    static void setPredictionCache(Object classifier, int size) throws Throwable
+    {
+        SET_PREDICTION_CACHE.invokeExact(classifier, (Object) size);
+    }
+
+    /**
+     * Same as classify.
+     */
+    static String classify(Object classifier, Map<Object, Object> instance) throws Throwable
+    {
+        return (String) (Object) CLASSIFY.invokeExact(classifier, (Object) instance);
+    }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+
+/**
+ * Throughput of creating instances and converting them to Weka, for schemas of different width and mix of
+ * nominal and numeric attributes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstanceBenchmark
+{
+    @Param({"4", "16", "64"})
+    public int attributes;
+
+    @Param({"0.0", "0.5", "1.0"})
+    public double nominal_ratio;
+
+    private Schema schema;
+    private Object[] row;
+    private Map<Object, Object> instance;
+    private ArrayList<Attribute> classifier_attributes;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        schema = Schema.synthetic(attributes, nominal_ratio);
+        row = schema.generate(1, 42).get(0);
+        instance = schema.instance(row, true);
+        classifier_attributes = Extension.attributes(schema.makeClassifier());
+    }
+
+    /**
+     * make-instance
+     */
+    @Benchmark
+    public Map<Object, Object> makeInstance() throws Throwable
+    {
+        return Extension.makeInstance();
+    }
+
+    /**
+     * make-instance followed by put-instance for every attribute.
+     */
+    @Benchmark
+    public Map<Object, Object> putInstance() throws Throwable
+    {
+        return schema.instance(row, true);
+    }
+
+    @Benchmark
+    public Instance getWekaInstance() throws Throwable
+    {
+        return Extension.getWekaInstance(instance, classifier_attributes);
+    }
+}
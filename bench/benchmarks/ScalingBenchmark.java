@@ -0,0 +1,203 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+import org.nlogo.core.LogoList;
+import org.nlogo.headless.HeadlessWorkspace;
+
+/**
+ * Runs the agent-based workload of scaling-benchmark.nlogo in a headless workspace for every combination of
+ * the numbers of botanists, plants and attributes given, and appends one line per run to a CSV file:
+ * ticks per second, time per training and per classification, peak heap and garbage collection. The same
+ * random seed is used for every run, so two commits can be compared with the same workload.
+ *
+ * Options, all optional:
+ *   --botanists 1,10,50     numbers of botanists
+ *   --plants 150,1000       numbers of plants
+ *   --attributes 4,16,64    numbers of numeric attributes of the plants
+ *   --ticks 200             ticks run by each run
+ *   --repeats 3             runs of each combination
+ *   --seed 42               NetLogo random seed
+ *   --model scaling-benchmark.nlogo
+ *   --output scaling.csv    CSV file, created with a header if it does not exist
+ *   --label ""              text in the first column of every line, for example the commit
+ *
+ * It runs from the root of the project, where the model finds the decision-tree directory.
+ */
+public class ScalingBenchmark
+{
+    static final String HEADER = "label,botanists,plants,attributes,ticks,repeat,setup_ms,ticks_per_second,"
+            + "builds,train_ms_per_build,classify_calls,classify_us_per_call,peak_heap_mb,gc_count,gc_ms";
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put("botanists", "1,10,50");
+        options.put("plants", "150,1000");
+        options.put("attributes", "4,16,64");
+        options.put("ticks", "200");
+        options.put("repeats", "3");
+        options.put("seed", "42");
+        options.put("model", "scaling-benchmark.nlogo");
+        options.put("output", "scaling.csv");
+        options.put("label", "");
+        for (int i = 0; i < args.length; i += 2)
+        {
+            String name = args[i].startsWith("--") ? args[i].substring(2) : args[i];
+            if (!options.containsKey(name) || i + 1 == args.length)
+                throw new IllegalArgumentException("Unknown option or missing value: " + args[i]);
+            options.put(name, args[i + 1]);
+        }
+
+        int[] botanists = ints(options.get("botanists"));
+        int[] plants = ints(options.get("plants"));
+        int[] attributes = ints(options.get("attributes"));
+        int ticks = Integer.parseInt(options.get("ticks"));
+        int repeats = Integer.parseInt(options.get("repeats"));
+        long seed = Long.parseLong(options.get("seed"));
+        File output = new File(options.get("output"));
+        boolean new_file = !output.exists() || output.length() == 0;
+
+        HeadlessWorkspace workspace = HeadlessWorkspace.newInstance();
+        try (PrintWriter csv = new PrintWriter(new FileWriter(output, true)))
+        {
+            workspace.open(options.get("model"), false);
+            if (new_file)
+                csv.println(HEADER);
+
+            // Warm up the JIT with the first combination, without recording it
+            run(workspace, botanists[0], plants[0], attributes[0], ticks, seed);
+
+            for (int b : botanists)
+            {
+                for (int p : plants)
+                {
+                    for (int a : attributes)
+                    {
+                        for (int r = 1; r <= repeats; r++)
+                        {
+                            String line = csvField(options.get("label")) + "," + b + "," + p + "," + a + "," + ticks + "," + r + ","
+                                    + run(workspace, b, p, a, ticks, seed);
+                            csv.println(line);
+                            csv.flush();
+                            System.out.println(line);
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            workspace.dispose();
+        }
+    }
+
+    /**
+     * Runs setup, the ticks and a final evaluation, and returns the measures as CSV fields from setup_ms on.
+     * The time per classification is the time of the evaluation divided by the number of classifications.
+     */
+    static String run(HeadlessWorkspace workspace, int botanists, int plants, int attributes, int ticks, long seed) throws Exception
+    {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+        long[] gc_start = gc();
+
+        workspace.command("random-seed " + seed);
+        long start = System.nanoTime();
+        workspace.command("setup " + botanists + " " + plants + " " + attributes);
+        long setup_nanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        workspace.command("repeat " + ticks + " [ go ]");
+        long go_nanos = System.nanoTime() - start;
+        Map<String, Object> trained = stats(workspace);
+
+        // The instances of the plants are built apart, so classify_us_per_call only measures the classifications
+        // and the NetLogo loop that makes them
+        workspace.command("prepare-evaluation");
+        start = System.nanoTime();
+        workspace.command("evaluate");
+        long evaluate_nanos = System.nanoTime() - start;
+        Map<String, Object> evaluated = stats(workspace);
+
+        long peak_heap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+                peak_heap += pool.getPeakUsage().getUsed();
+        }
+        long[] gc_end = gc();
+
+        double builds = (Double) trained.get("builds");
+        double build_ms = (Double) trained.get("total-build-ms");
+        double classify_calls = (Double) evaluated.get("classify-calls") - (Double) trained.get("classify-calls");
+        return String.format(Locale.ROOT, "%.3f,%.3f,%.0f,%.4f,%.0f,%.3f,%.1f,%d,%d",
+                setup_nanos / 1e6,
+                ticks / (go_nanos / 1e9),
+                builds,
+                (builds == 0) ? 0.0 : build_ms / builds,
+                classify_calls,
+                (classify_calls == 0) ? 0.0 : evaluate_nanos / 1e3 / classify_calls,
+                peak_heap / (1024.0 * 1024.0),
+                gc_end[0] - gc_start[0],
+                gc_end[1] - gc_start[1]);
+    }
+
+    /**
+     * Returns the values of decision-tree:global-stats by key.
+     */
+    static Map<String, Object> stats(HeadlessWorkspace workspace) throws Exception
+    {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        LogoList pairs = (LogoList) workspace.report("decision-tree:global-stats");
+        for (Iterator<Object> it = pairs.javaIterator(); it.hasNext(); )
+        {
+            LogoList pair = (LogoList) it.next();
+            stats.put((String) pair.get(0), pair.get(1));
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the number of collections and the milliseconds spent collecting since the JVM started.
+     */
+    static long[] gc()
+    {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+
+    static int[] ints(String list)
+    {
+        String[] items = list.split(",");
+        int[] values = new int[items.length];
+        for (int i = 0; i < items.length; i++)
+            values[i] = Integer.parseInt(items[i].trim());
+        return values;
+    }
+
+    static String csvField(String text)
+    {
+        if (text.contains(",") || text.contains("\"") || text.contains("\n"))
+            return "\"" + text.replace("\"", "\"\"") + "\"";
+        return text;
+    }
+}
@@ -0,0 +1,158 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.nlogo.api.LogoListBuilder;
+import org.nlogo.core.LogoList;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Attributes and rows of a dataset used by the benchmarks, either read from a file or generated.
+ */
+final class Schema
+{
+    final String[] names;
+    final String[][] nominal_values;    // Possible values of each attribute, null if numeric
+    final int class_index;
+
+    private Schema(String[] names, String[][] nominal_values, int class_index)
+    {
+        this.names = names;
+        this.nominal_values = nominal_values;
+        this.class_index = class_index;
+    }
+
+    /**
+     * Schema and rows of an ARFF or CSV file.
+     */
+    static Schema fromFile(String path, List<Object[]> rows) throws Exception
+    {
+        Instances data = new DataSource(path).getDataSet();
+        String[] names = new String[data.numAttributes()];
+        String[][] nominal_values = new String[names.length][];
+        for (int i = 0; i < names.length; i++)
+        {
+            Attribute attr = data.attribute(i);
+            names[i] = attr.name();
+            if (attr.isNominal())
+            {
+                nominal_values[i] = new String[attr.numValues()];
+                for (int v = 0; v < attr.numValues(); v++)
+                    nominal_values[i][v] = attr.value(v);
+            }
+        }
+
+        for (int r = 0; r < data.numInstances(); r++)
+        {
+            Object[] row = new Object[names.length];
+            for (int i = 0; i < names.length; i++)
+                row[i] = (nominal_values[i] == null) ? (Object) data.instance(r).value(i) : data.instance(r).stringValue(i);
+            rows.add(row);
+        }
+        return new Schema(names, nominal_values, names.length - 1);
+    }
+
+    /**
+     * Schema with the given number of attributes, the first nominal_ratio of them nominal and the rest numeric,
+     * plus a nominal class.
+     */
+    static Schema synthetic(int num_attributes, double nominal_ratio)
+    {
+        int num_nominal = (int) Math.round(num_attributes * nominal_ratio);
+        String[] names = new String[num_attributes + 1];
+        String[][] nominal_values = new String[names.length][];
+        for (int i = 0; i < num_attributes; i++)
+        {
+            names[i] = "attribute-" + i;
+            if (i < num_nominal)
+                nominal_values[i] = new String[]{"a", "b", "c", "d"};
+        }
+        names[num_attributes] = "class";
+        nominal_values[num_attributes] = new String[]{"low", "medium", "high"};
+        return new Schema(names, nominal_values, num_attributes);
+    }
+
+    /**
+     * Generates rows for a synthetic schema. The class depends on a weighted sum of the attributes plus noise,
+     * so the trees have to split on many of them.
+     */
+    List<Object[]> generate(int num_rows, long seed)
+    {
+        Random random = new Random(seed);
+        double[] weights = new double[class_index];
+        for (int i = 0; i < weights.length; i++)
+            weights[i] = random.nextGaussian();
+
+        List<Object[]> rows = new ArrayList<Object[]>(num_rows);
+        for (int r = 0; r < num_rows; r++)
+        {
+            Object[] row = new Object[names.length];
+            double score = random.nextGaussian() * 0.5;
+            for (int i = 0; i < class_index; i++)
+            {
+                if (nominal_values[i] == null)
+                {
+                    double value = random.nextGaussian();
+                    row[i] = value;
+                    score += weights[i] * value;
+                }
+                else
+                {
+                    int value = random.nextInt(nominal_values[i].length);
+                    row[i] = nominal_values[i][value];
+                    score += weights[i] * (value - 1.5);
+                }
+            }
+            double spread = Math.sqrt(class_index);
+            row[class_index] = nominal_values[class_index][score < -0.4 * spread ? 0 : (score < 0.4 * spread ? 1 : 2)];
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    LogoList attributeNames()
+    {
+        LogoListBuilder list = new LogoListBuilder();
+        for (String name : names)
+            list.add(name);
+        return list.toLogoList();
+    }
+
+    LogoList attributeTypes()
+    {
+        LogoListBuilder list = new LogoListBuilder();
+        for (String[] values : nominal_values)
+        {
+            LogoListBuilder type = new LogoListBuilder();
+            for (int v = 0; values != null && v < values.length; v++)
+                type.add(values[v]);
+            list.add(type.toLogoList());
+        }
+        return list.toLogoList();
+    }
+
+    Object makeClassifier() throws Throwable
+    {
+        return Extension.makeClassifier(attributeNames(), attributeTypes(), class_index);
+    }
+
+    /**
+     * Same as make-instance followed by put-instance for every value of the row.
+     */
+    Map<Object, Object> instance(Object[] row, boolean with_class) throws Throwable
+    {
+        Map<Object, Object> instance = Extension.makeInstance();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (with_class || i != class_index)
+                instance.put(names[i], row[i]);
+        }
+        return instance;
+    }
+}
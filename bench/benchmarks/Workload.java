@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import weka.core.Instance;
+
+/**
+ * Instances and classifiers prepared from the rows of a schema, shared by the classifier benchmarks.
+ */
+final class Workload
+{
+    final Schema schema;
+    final List<Map<Object, Object>> instances;     // Training rows, with the class
+    final List<Map<Object, Object>> queries;       // Training rows, without the class
+
+    private final List<Instance> weka_instances;   // Training rows already converted, to refill classifiers fast
+
+    Workload(Schema schema, List<Object[]> rows) throws Throwable
+    {
+        this.schema = schema;
+        instances = new ArrayList<Map<Object, Object>>(rows.size());
+        queries = new ArrayList<Map<Object, Object>>(rows.size());
+        for (Object[] row : rows)
+        {
+            instances.add(schema.instance(row, true));
+            queries.add(schema.instance(row, false));
+        }
+
+        Object classifier = schema.makeClassifier();
+        weka_instances = new ArrayList<Instance>(rows.size());
+        for (Map<Object, Object> instance : instances)
+            weka_instances.add(Extension.getWekaInstance(instance, Extension.attributes(classifier)));
+    }
+
+    /**
+     * Clears the classifier and adds all the training rows, so the next training has to build the tree.
+     */
+    void refill(Object classifier) throws Throwable
+    {
+        Extension.clear(classifier);
+        for (Instance instance : weka_instances)
+            Extension.add(classifier, instance);
+    }
+
+    Object trainedClassifier() throws Throwable
+    {
+        Object classifier = schema.makeClassifier();
+        refill(classifier);
+        Extension.train(classifier);
+        return classifier;
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.Random;
+
+import org.nlogo.api.ExtensionException;
+
+import weka.core.Instances;
+
+public class TestAsyncTraining
+{
+    public static void main(String[] args) throws Exception
+    {
+        DecisionTreeExtension.Registry registry = new DecisionTreeExtension.Registry();
+        Instances iris = TestSupport.iris();
+        DecisionTreeExtension.J48Classifier classifier = TestSupport.irisClassifier(registry);
+        classifier.setTrainingPolicy(new DecisionTreeExtension.TrainingPolicy("window", iris.numInstances(),
+                classifier.attributes().get(4), new Random(1)));
+        TestSupport.addIris(classifier, registry, iris);
+        classifier.train();
+
+        // A background training takes its rows, more rows replace others in the window, and a training on the
+        // job thread finishes before the background one runs. Both must bin the rows they took.
+        Random random = new Random(2);
+        int different = 0;
+        for (int round = 0; round < 20; round++)
+        {
+            addRandom(classifier, registry, iris, random, 40);
+            java.util.concurrent.Callable<Void> background = classifier.trainingTask();
+            addRandom(classifier, registry, iris, random, 40);
+            classifier.train();
+            background.call();
+            if (!classifier.treeDescription().equals(trainedCopy(classifier, registry).treeDescription()))
+                different++;
+        }
+        System.out.println("Trainings that missed the rows replaced for a pending one: " + different + " of 20");
+        TestSupport.check(different == 0, "A training used the bins of rows replaced before a pending training");
+
+        // The error of a failed background training is reported by training?, not by the classifications
+        // An infinite value makes Discretize fail
+        TestSupport.Workspace workspace = new TestSupport.Workspace();
+        DecisionTreeExtension.J48Classifier failing = workspace.irisClassifier();
+        TestSupport.addIris(failing, registry, iris);
+        workspace.perform("train-classifier", failing);
+        DecisionTreeExtension.TableInstance infinite = TestSupport.irisInstance(registry, iris.instance(0));
+        infinite.put("sepallength", Double.POSITIVE_INFINITY);
+        failing.add(infinite.getWekaInstance(failing.attributes()));
+        workspace.perform("train-classifier-async", failing);
+        while (failing.isTraining())
+            Thread.sleep(1);
+        failing.classify(TestSupport.irisInstance(registry, iris.instance(0)));
+        workspace.report("classify-all", failing, TestSupport.list(infinite));
+        String error = null;
+        try {
+            workspace.report("training?", failing);
+        } catch (ExtensionException e) {
+            error = e.getMessage();
+        }
+        System.out.println("Reported by training?: " + error);
+        TestSupport.check(error != null, "training? did not report the error of the background training");
+        TestSupport.check(Boolean.FALSE.equals(workspace.report("training?", failing)), "The error was reported twice");
+    }
+
+    /**
+     * Adds random rows within the range of the iris values, the first two at its bounds, so the cut points do not
+     * move and only the replaced rows are binned again.
+     */
+    static void addRandom(DecisionTreeExtension.J48Classifier classifier, DecisionTreeExtension.Registry registry,
+                          Instances iris, Random random, int n) throws Exception
+    {
+        for (int i = 0; i < n; i++)
+        {
+            DecisionTreeExtension.TableInstance instance = new DecisionTreeExtension.TableInstance(registry);
+            for (int j = 0; j < 4; j++)
+            {
+                double min = iris.attributeStats(j).numericStats.min;
+                double max = iris.attributeStats(j).numericStats.max;
+                instance.put(TestSupport.IRIS_ATTRIBUTES[j], i == 0 ? min : i == 1 ? max : min + random.nextDouble() * (max - min));
+            }
+            instance.put("class", TestSupport.IRIS_CLASSES[random.nextInt(3)]);
+            classifier.add(instance.getWekaInstance(classifier.attributes()));
+        }
+    }
+
+    /**
+     * Returns a new classifier trained with the current rows of the given one, without any cached bins.
+     */
+    static DecisionTreeExtension.J48Classifier trainedCopy(DecisionTreeExtension.J48Classifier classifier,
+                                                           DecisionTreeExtension.Registry registry) throws Exception
+    {
+        DecisionTreeExtension.J48Classifier copy = TestSupport.irisClassifier(registry);
+        Instances rows = classifier.trainingData();
+        for (int i = 0; i < rows.numInstances(); i++)
+            copy.add(rows.instance(i));
+        copy.train();
+        return copy;
+    }
+}
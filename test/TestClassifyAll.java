@@ -0,0 +1,30 @@
+import java.util.List;
+import java.util.Random;
+
+import org.nlogo.core.LogoList;
+
+public class TestClassifyAll
+{
+    public static void main(String[] args) throws Exception
+    {
+        TestSupport.Workspace workspace = new TestSupport.Workspace();
+        DecisionTreeExtension.J48Classifier classifier = workspace.irisClassifier();
+        TestSupport.addIris(classifier, new DecisionTreeExtension.Registry(), TestSupport.iris());
+        workspace.perform("train-classifier", classifier);
+
+        // Enough queries to be split among the workers
+        List<DecisionTreeExtension.TableInstance> queries = TestSupport.irisQueries(new DecisionTreeExtension.Registry(), new Random(1), 5000);
+        for (boolean compiled : new boolean[]{false, true})
+        {
+            workspace.perform("set-compiled", classifier, compiled);
+            LogoList predictions = (LogoList) workspace.report("classify-all", classifier, TestSupport.list(queries.toArray()));
+            TestSupport.check(predictions.length() == queries.size(), "classify-all reported " + predictions.length() + " predictions");
+            int mismatches = 0;
+            for (int i = 0; i < queries.size(); i++)
+                if (!predictions.get(i).equals(workspace.report("classify", classifier, queries.get(i))))
+                    mismatches++;
+            System.out.println("Compiled " + compiled + ": " + mismatches + " mismatches with classify");
+            TestSupport.check(mismatches == 0, "classify-all and classify predict differently");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+
+import weka.core.Instance;
+
+public class TestCompiledTree
+{
+    public static void main(String[] args) throws Exception
+    {
+        DecisionTreeExtension.Registry registry = new DecisionTreeExtension.Registry();
+        DecisionTreeExtension.J48Classifier classifier = TestSupport.irisClassifier(registry);
+        TestSupport.addIris(classifier, registry, TestSupport.iris());
+        classifier.train();
+        classifier.setCompiled(true);
+
+        // Compare both paths on random queries, some of them with missing attributes
+        int mismatches = 0;
+        for (DecisionTreeExtension.TableInstance query : TestSupport.irisQueries(registry, new Random(1), 10000))
+        {
+            // The Weka model itself, as classify() would take the compiled path
+            int compiled = classifier.model().compiled_tree.classify(query);
+            Instance weka_query = classifier.wekaInstance(query);
+            weka_query.setDataset(classifier.header);
+            int weka = (int) classifier.model().classifier.classifyInstance(weka_query);
+            if (compiled >= 0 && compiled != weka)
+                mismatches++;
+        }
+        System.out.println("Compiled tree mismatches: " + mismatches);
+        TestSupport.check(mismatches == 0, "The compiled tree and the Weka model predict differently");
+
+        // Classifying a table instance with the compiled tree does not allocate
+        List<DecisionTreeExtension.TableInstance> queries = TestSupport.irisQueries(registry, new Random(2), 1000);
+        DecisionTreeExtension.CompiledTree tree = classifier.model().compiled_tree;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int round = 0; round < 20; round++)
+        {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (DecisionTreeExtension.TableInstance query : queries)
+                tree.classify(query);
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+        }
+        System.out.println("Bytes allocated by " + queries.size() + " compiled queries: " + allocated);
+        TestSupport.check(allocated < queries.size(), "The compiled tree allocates " + allocated + " bytes per " + queries.size() + " queries");
+        // Without the compiled tree every query goes through Weka, with the same predictions, until it is compiled again
+        List<DecisionTreeExtension.TableInstance> more = TestSupport.irisQueries(registry, new Random(3), 1000);
+        String[] expected = new String[more.size()];
+        for (int i = 0; i < expected.length; i++)
+            expected[i] = classifier.classify(more.get(i));
+        classifier.setCompiled(false);
+        boolean dropped = classifier.model().compiled_tree == null;
+        int fallback_mismatches = 0;
+        for (int i = 0; i < expected.length; i++)
+        {
+            if (!classifier.classify(more.get(i)).equals(expected[i]))
+                fallback_mismatches++;
+        }
+        classifier.setCompiled(true);
+        System.out.println("Weka fallback mismatches: " + fallback_mismatches);
+        TestSupport.check(dropped, "The compiled tree is still used once disabled");
+        TestSupport.check(fallback_mismatches == 0, "The Weka fallback predicts differently");
+        TestSupport.check(classifier.model().compiled_tree != null, "The tree is not compiled again once enabled");
+    }
+}
@@ -0,0 +1,36 @@
+import java.util.Random;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+public class TestDeduplicate
+{
+    public static void main(String[] args) throws Exception
+    {
+        Instances iris = TestSupport.iris();
+        DecisionTreeExtension.Registry registry = new DecisionTreeExtension.Registry();
+        DecisionTreeExtension.J48Classifier plain = TestSupport.irisClassifier(registry);
+        DecisionTreeExtension.J48Classifier merged = TestSupport.irisClassifier(registry);
+        merged.setDeduplicate(true);
+
+        // Rows drawn at random, so most of them are added several times
+        Random random = new Random(1);
+        for (int n = 0; n < 5 * iris.numInstances(); n++)
+        {
+            Instance row = iris.instance(random.nextInt(iris.numInstances()));
+            DecisionTreeExtension.TableInstance instance = TestSupport.irisInstance(registry, row);
+            plain.add(instance.getWekaInstance(plain.attributes()));
+            merged.add(instance.getWekaInstance(merged.attributes()));
+        }
+        plain.train();
+        merged.train();
+
+        // The merged rows weigh as much as the rows they replace, so the trees must be the same
+        int mismatches = TestSupport.mismatches(plain, merged, TestSupport.irisQueries(registry, random, 10000));
+        System.out.println("Rows: " + plain.numInstances() + " plain, " + merged.numInstances() + " merged");
+        System.out.println("Prediction mismatches: " + mismatches);
+        TestSupport.check(merged.numInstances() < plain.numInstances(), "The duplicate rows were not merged");
+        TestSupport.check(plain.treeDescription().equals(merged.treeDescription()), "The merged rows give another tree");
+        TestSupport.check(mismatches == 0, "The merged rows give other predictions");
+    }
+}
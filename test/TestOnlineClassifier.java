@@ -0,0 +1,44 @@
+import java.util.List;
+import java.util.Random;
+
+import org.nlogo.core.LogoList;
+
+import weka.core.Instances;
+
+public class TestOnlineClassifier
+{
+    public static void main(String[] args) throws Exception
+    {
+        Instances iris = TestSupport.iris();
+        DecisionTreeExtension.Registry registry = new DecisionTreeExtension.Registry();
+        DecisionTreeExtension.OnlineClassifier classifier = new DecisionTreeExtension.OnlineClassifier(registry,
+                TestSupport.list((Object[]) TestSupport.IRIS_ATTRIBUTES), TestSupport.types(4, TestSupport.IRIS_CLASSES), 4);
+        Random random = new Random(1);
+        List<DecisionTreeExtension.TableInstance> queries = TestSupport.irisQueries(registry, random, 1000);
+
+        // Learning and classifying one instance at a time uses the tree itself, without copying it
+        DecisionTreeExtension.TrainedModel published = classifier.model;
+        for (int n = 0; n < 2000; n++)
+        {
+            classifier.add(TestSupport.irisInstance(registry, iris.instance(random.nextInt(iris.numInstances()))));
+            classifier.classify(queries.get(n % queries.size()));
+            classifier.train();
+        }
+        TestSupport.check(classifier.model == published, "Classifying on the job thread published a copy of the tree");
+        TestSupport.check(classifier.modelVersion() > 0, "The tree did not learn from the instances added");
+
+        // The worker threads get a copy of the current tree, taken once for all the queries
+        TestSupport.Workspace workspace = new TestSupport.Workspace();
+        LogoList predictions = (LogoList) workspace.report("classify-all", classifier, TestSupport.list(queries.toArray()));
+        DecisionTreeExtension.TrainedModel copy = classifier.model;
+        TestSupport.check(copy != published && copy.version == classifier.modelVersion(), "classify-all did not use a copy of the current tree");
+        int mismatches = 0;
+        for (int i = 0; i < queries.size(); i++)
+            if (!predictions.get(i).equals(classifier.classify(queries.get(i))))
+                mismatches++;
+        System.out.println("Rows: " + classifier.numInstances() + ", mismatches between classify-all and classify: " + mismatches);
+        TestSupport.check(mismatches == 0, "The copy of the tree predicts differently");
+        workspace.report("classify-all", classifier, TestSupport.list(queries.toArray()));
+        TestSupport.check(classifier.model == copy, "The tree was copied again without new instances");
+    }
+}
@@ -0,0 +1,162 @@
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+public class TestPartialRows
+{
+    static final int NUM_FEATURES = 40;
+
+    public static void main(String[] args) throws Exception
+    {
+        DecisionTreeExtension.Registry registry = new DecisionTreeExtension.Registry();
+        DecisionTreeExtension.J48Classifier partial = newClassifier(registry);
+        DecisionTreeExtension.J48Classifier dense = newClassifier(registry);
+
+        // Every row sets only a few of the features, so it is stored partial
+        Random random = new Random(1);
+        int partial_rows = 0;
+        for (int n = 0; n < 3000; n++)
+        {
+            DecisionTreeExtension.TableInstance instance = randomInstance(registry, random);
+            double sum = 0;
+            for (Object value : instance.values())
+                sum += (Double) value;
+            instance.put("class", sum > 0 ? "positive" : "negative");
+
+            Instance row = partial.wekaInstance(instance);
+            if (row instanceof DecisionTreeExtension.PartialInstance)
+                partial_rows++;
+            partial.add(row);
+            dense.add(instance.getWekaInstance(dense.attributes()));
+        }
+        partial.train();
+        dense.train();
+
+        List<DecisionTreeExtension.TableInstance> queries = new ArrayList<DecisionTreeExtension.TableInstance>();
+        for (int i = 0; i < 10000; i++)
+            queries.add(randomInstance(registry, random));
+        int mismatches = TestSupport.mismatches(partial, dense, queries);
+        System.out.println("Partial rows: " + partial_rows + " of " + partial.numInstances());
+        System.out.println("Prediction mismatches: " + mismatches);
+        TestSupport.check(partial_rows == partial.numInstances(), "The rows with few values set were not kept partial");
+        TestSupport.check(partial.treeDescription().equals(dense.treeDescription()), "The partial rows give another tree");
+        TestSupport.check(mismatches == 0, "The partial rows give other predictions");
+
+        // A row is partial with up to a quarter of the attributes set, the class included
+        DecisionTreeExtension.TableInstance instance = new DecisionTreeExtension.TableInstance(registry);
+        instance.put("class", "positive");
+        int max_set = (int) (DecisionTreeExtension.PartialInstance.MAX_DENSITY * (NUM_FEATURES + 1));
+        for (int i = 0; i < max_set - 1; i++)
+            instance.put("feature-" + i, 1.0);
+        TestSupport.check(partial.wekaInstance(instance) instanceof DecisionTreeExtension.PartialInstance,
+                "A row with a quarter of the attributes set is not partial");
+        instance.put("feature-" + max_set, 1.0);
+        TestSupport.check(!(partial.wekaInstance(instance) instanceof DecisionTreeExtension.PartialInstance),
+                "A row with more than a quarter of the attributes set is partial");
+
+        // The values read from a partial row, wider than a word of bits, are the ones set, after it changes too
+        double[] values = new double[130];
+        java.util.Arrays.fill(values, weka.core.Utils.missingValue());
+        for (int i = 0; i < 20; i++)
+            values[random.nextInt(values.length)] = random.nextGaussian();
+        Instance changed = DecisionTreeExtension.PartialInstance.of(1.0, values);
+        for (int n = 0; n < 200; n++)
+        {
+            int i = random.nextInt(values.length);
+            values[i] = (random.nextInt(3) == 0) ? random.nextGaussian() : weka.core.Utils.missingValue();
+            changed.setValue(i, values[i]);
+            for (int j = 0; j < values.length; j++)
+                TestSupport.check(Double.doubleToLongBits(changed.value(j)) == Double.doubleToLongBits(values[j]),
+                        "The partial row reads " + changed.value(j) + " instead of " + values[j] + " for attribute " + j);
+        }
+
+        // The rows of a training file, and the ones of a saved classifier, are stored partial as well
+        TestSupport.Workspace workspace = new TestSupport.Workspace();
+        File csv = File.createTempFile("partial", ".csv");
+        File saved = File.createTempFile("partial", ".classifier");
+        csv.deleteOnExit();
+        saved.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(csv)) {
+            out.println(String.join(",", names()));
+            Instances rows = partial.trainingData();
+            for (int r = 0; r < rows.numInstances(); r++)
+            {
+                String[] fields = new String[NUM_FEATURES + 1];
+                Instance row = rows.instance(r);
+                for (int i = 0; i < NUM_FEATURES; i++)
+                    fields[i] = row.isMissing(i) ? "" : Double.toString(row.value(i));
+                fields[NUM_FEATURES] = row.stringValue(NUM_FEATURES);
+                out.println(String.join(",", fields));
+            }
+        }
+        DecisionTreeExtension.J48Classifier from_file = newClassifier(workspace);
+        workspace.perform("load-training-file", from_file, csv.getPath());
+        workspace.perform("train-classifier", from_file);
+        workspace.perform("save-classifier", from_file, saved.getPath(), true);
+        DecisionTreeExtension.J48Classifier loaded = (DecisionTreeExtension.J48Classifier) workspace.report("load-classifier", saved.getPath());
+        for (DecisionTreeExtension.J48Classifier classifier : new DecisionTreeExtension.J48Classifier[]{from_file, loaded})
+        {
+            String source = (classifier == loaded) ? "saved classifier" : "training file";
+            System.out.println("Partial rows of the " + source + ": " + partialRows(classifier) + " of " + classifier.numInstances());
+            TestSupport.check(classifier.numInstances() == partial.numInstances() && partialRows(classifier) == classifier.numInstances(),
+                    "The rows of the " + source + " were not kept partial");
+            TestSupport.check(classifier.treeDescription().equals(partial.treeDescription()), "The rows of the " + source + " give another tree");
+        }
+
+        // The rows of a shared dataset stay dense, and give the same tree
+        DecisionTreeExtension.J48Classifier shared = newClassifier(workspace);
+        workspace.perform("use-dataset", shared, workspace.report("make-dataset"));
+        Instances rows = partial.trainingData();
+        for (int r = 0; r < rows.numInstances(); r++)
+            shared.add(rows.instance(r));
+        workspace.perform("train-classifier", shared);
+        System.out.println("Partial rows of the shared dataset: " + partialRows(shared) + " of " + shared.numInstances());
+        TestSupport.check(partialRows(shared) == 0, "The rows of a shared dataset are partial");
+        TestSupport.check(shared.treeDescription().equals(partial.treeDescription()), "The rows of a shared dataset give another tree");
+    }
+
+    static int partialRows(DecisionTreeExtension.J48Classifier classifier)
+    {
+        Instances rows = classifier.trainingData();
+        int partial_rows = 0;
+        for (int r = 0; r < rows.numInstances(); r++)
+        {
+            if (rows.instance(r) instanceof DecisionTreeExtension.PartialInstance)
+                partial_rows++;
+        }
+        return partial_rows;
+    }
+
+    static DecisionTreeExtension.TableInstance randomInstance(DecisionTreeExtension.Registry registry, Random random)
+    {
+        DecisionTreeExtension.TableInstance instance = new DecisionTreeExtension.TableInstance(registry);
+        for (int k = 0; k < 4; k++)
+            instance.put("feature-" + random.nextInt(NUM_FEATURES), random.nextGaussian());
+        return instance;
+    }
+
+    static String[] names()
+    {
+        String[] names = new String[NUM_FEATURES + 1];
+        for (int i = 0; i < NUM_FEATURES; i++)
+            names[i] = "feature-" + i;
+        names[NUM_FEATURES] = "class";
+        return names;
+    }
+
+    static DecisionTreeExtension.J48Classifier newClassifier(DecisionTreeExtension.Registry registry) throws Exception
+    {
+        return TestSupport.newClassifier(registry, names(), "positive", "negative");
+    }
+
+    static DecisionTreeExtension.J48Classifier newClassifier(TestSupport.Workspace workspace) throws Exception
+    {
+        return (DecisionTreeExtension.J48Classifier) workspace.report("make-classifier", TestSupport.list((Object[]) names()),
+                TestSupport.types(NUM_FEATURES, "positive", "negative"), (double) NUM_FEATURES);
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.List;
+import java.util.Random;
+
+import weka.core.Instances;
+
+public class TestPredictionCache
+{
+    public static void main(String[] args) throws Exception
+    {
+        // The predictions of the compiled tree are not cached, so both classifiers go through Weka
+        DecisionTreeExtension.Registry rows = new DecisionTreeExtension.Registry();
+        TestSupport.Workspace workspace = new TestSupport.Workspace();
+        DecisionTreeExtension.J48Classifier cached = workspace.irisClassifier();
+        DecisionTreeExtension.J48Classifier uncached = workspace.irisClassifier();
+        workspace.perform("set-compiled", cached, false);
+        workspace.perform("set-compiled", uncached, false);
+        workspace.perform("set-prediction-cache", uncached, 0.0);
+        List<DecisionTreeExtension.TableInstance> queries = TestSupport.irisQueries(rows, new Random(1), 2000);
+
+        // The rows of iris are sorted by class, so the first 100 have no virginica
+        Instances iris = TestSupport.iris();
+        Instances first = new Instances(iris, 0, 100);
+        Instances rest = new Instances(iris, 100, iris.numInstances() - 100);
+        train(workspace, rows, first, cached, uncached);
+        int mismatches = TestSupport.mismatches(uncached, cached, queries) + TestSupport.mismatches(uncached, cached, queries);
+        long hits = cached.stats.cache_hits.sum();
+        System.out.println("Cache hits: " + hits + ", misses: " + cached.stats.cache_misses.sum() + ", prediction mismatches: " + mismatches);
+        TestSupport.check(hits > 0, "No prediction was answered by the cache");
+        TestSupport.check(uncached.stats.cache_hits.sum() == 0 && uncached.stats.cache_misses.sum() == 0, "The disabled cache was used");
+        TestSupport.check(mismatches == 0, "The cached predictions differ");
+
+        // Retrained with virginica, the predictions of the old model must not be answered
+        train(workspace, rows, rest, cached, uncached);
+        mismatches = TestSupport.mismatches(uncached, cached, queries);
+        int virginica = count(cached, queries, "Iris-virginica");
+        System.out.println("After training again, virginica predictions: " + virginica + ", prediction mismatches: " + mismatches);
+        TestSupport.check(virginica > 0 && mismatches == 0, "The predictions of the previous model were answered after training");
+
+        // Cleared and trained without virginica again, the predictions of the cleared model must not be answered
+        workspace.perform("clear-classifier", cached);
+        workspace.perform("clear-classifier", uncached);
+        train(workspace, rows, first, cached, uncached);
+        mismatches = TestSupport.mismatches(uncached, cached, queries);
+        virginica = count(cached, queries, "Iris-virginica");
+        System.out.println("After clearing, virginica predictions: " + virginica + ", prediction mismatches: " + mismatches);
+        TestSupport.check(virginica == 0 && mismatches == 0, "The predictions of the cleared model were answered");
+    }
+
+    static void train(TestSupport.Workspace workspace, DecisionTreeExtension.Registry rows, Instances data,
+                      DecisionTreeExtension.J48Classifier... classifiers) throws Exception
+    {
+        for (DecisionTreeExtension.J48Classifier classifier : classifiers)
+        {
+            TestSupport.addIris(classifier, rows, data);
+            workspace.perform("train-classifier", classifier);
+        }
+    }
+
+    static int count(DecisionTreeExtension.J48Classifier classifier, List<DecisionTreeExtension.TableInstance> queries,
+                     String prediction) throws Exception
+    {
+        int count = 0;
+        for (DecisionTreeExtension.TableInstance query : queries)
+        {
+            if (classifier.classify(query).equals(prediction))
+                count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,84 @@
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import org.nlogo.api.ExtensionException;
+
+import weka.core.Instances;
+
+public class TestSaveLoad
+{
+    public static void main(String[] args) throws Exception
+    {
+        DecisionTreeExtension.Registry registry = new DecisionTreeExtension.Registry();
+        TestSupport.Workspace workspace = new TestSupport.Workspace();
+        DecisionTreeExtension.J48Classifier original = workspace.irisClassifier();
+        Instances iris = TestSupport.iris();
+        TestSupport.addIris(original, registry, iris);
+        workspace.perform("train-classifier", original);
+        List<DecisionTreeExtension.TableInstance> queries = TestSupport.irisQueries(registry, new Random(1), 10000);
+
+        // Save and load, with and without the training data
+        File file = File.createTempFile("iris", ".classifier");
+        file.deleteOnExit();
+        for (boolean with_data : new boolean[]{true, false})
+        {
+            workspace.perform("save-classifier", original, file.getPath(), with_data);
+            DecisionTreeExtension.J48Classifier loaded = (DecisionTreeExtension.J48Classifier)
+                    new TestSupport.Workspace().report("load-classifier", file.getPath());
+            boolean same_rows = loaded.numInstances() == (with_data ? original.numInstances() : 0);
+            boolean same_tree = loaded.treeDescription().equals(original.treeDescription());
+            int mismatches = TestSupport.mismatches(original, loaded, queries);
+
+            // With the data the loaded classifier can be trained again, and must learn the same tree
+            boolean same_retrained = true;
+            if (with_data)
+            {
+                loaded.train();
+                same_retrained = loaded.treeDescription().equals(original.treeDescription())
+                        && TestSupport.mismatches(original, loaded, queries) == 0;
+            }
+            System.out.println("Save " + (with_data ? "with" : "without") + " data: " + file.length() + " bytes, same rows: "
+                    + same_rows + ", same tree: " + same_tree + ", prediction mismatches: " + mismatches
+                    + (with_data ? ", same after training: " + same_retrained : ""));
+            TestSupport.check(same_rows && same_tree && mismatches == 0 && same_retrained, "The saved classifier is not the same once loaded");
+        }
+
+        // Export a world where the classifier shares its rows with another, and import it in a new workspace
+        workspace = new TestSupport.Workspace();
+        DecisionTreeExtension.J48Classifier exported = workspace.irisClassifier();
+        DecisionTreeExtension.J48Classifier sharing = workspace.irisClassifier();
+        DecisionTreeExtension.SharedDataset dataset = (DecisionTreeExtension.SharedDataset) workspace.report("make-dataset");
+        workspace.perform("use-dataset", exported, dataset);
+        workspace.perform("use-dataset", sharing, dataset);
+        TestSupport.addIris(exported, registry, iris);
+        TestSupport.addIris(sharing, registry, new Instances(iris, 0, 50));
+        workspace.perform("train-classifier", exported);
+        List<String[]> lines = TestSupport.exportedLines(workspace.extension);
+        TestSupport.Workspace imported_workspace = new TestSupport.Workspace();
+        imported_workspace.extension.importWorld(lines, null, null);
+        DecisionTreeExtension.J48Classifier imported = (DecisionTreeExtension.J48Classifier)
+                imported_workspace.extension.readExtensionObject(null, "classifier", exported.dump(true, true, true));
+        DecisionTreeExtension.SharedDataset imported_dataset = (DecisionTreeExtension.SharedDataset)
+                imported_workspace.extension.readExtensionObject(null, "dataset", dataset.dump(true, true, true));
+        boolean same_rows = imported.numInstances() == original.numInstances();
+        boolean same_tree = imported.treeDescription().equals(original.treeDescription());
+        int mismatches = TestSupport.mismatches(original, imported, queries);
+        boolean same_dataset = imported_dataset.numRows() == dataset.numRows() && imported_dataset.users().equals(dataset.users());
+        System.out.println("Export and import: " + lines.size() + " lines, same rows: " + same_rows
+                + ", same tree: " + same_tree + ", prediction mismatches: " + mismatches + ", same dataset: " + same_dataset);
+        TestSupport.check(same_rows && same_tree && mismatches == 0, "The exported classifier is not the same once imported");
+        TestSupport.check(same_dataset, "The exported dataset is not the same once imported");
+
+        // Objects of another type, or without an id, are import errors
+        for (String[] object : new String[][]{{"tree", "1"}, {"classifier", "one"}, {"dataset", ": [1]"}})
+        {
+            try {
+                imported_workspace.extension.readExtensionObject(null, object[0], object[1]);
+                TestSupport.check(false, "Importing " + object[0] + " " + object[1] + " did not fail");
+            } catch (ExtensionException e) {
+                System.out.println("Importing " + object[0] + " " + object[1] + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import weka.core.Instances;
+
+public class TestSharedDataset
+{
+    public static void main(String[] args) throws Exception
+    {
+        Instances iris = TestSupport.iris();
+        DecisionTreeExtension.Registry rows = new DecisionTreeExtension.Registry();
+        TestSupport.Workspace workspace = new TestSupport.Workspace();
+        DecisionTreeExtension.SharedDataset dataset = (DecisionTreeExtension.SharedDataset) workspace.report("make-dataset");
+        DecisionTreeExtension.J48Classifier first = workspace.irisClassifier();
+        DecisionTreeExtension.J48Classifier second = workspace.irisClassifier();
+        workspace.perform("use-dataset", first, dataset);
+        workspace.perform("use-dataset", second, dataset);
+
+        // The first classifier learns from every row, the second one from the first 100
+        TestSupport.addIris(first, rows, iris);
+        TestSupport.addIris(second, rows, new Instances(iris, 0, 100));
+        int distinct = dataset.numRows();
+        System.out.println("Distinct rows: " + distinct);
+        TestSupport.check(distinct < iris.numInstances(), "The equal rows of the classifiers are stored twice");
+
+        // Round trip through export-world and import-world
+        workspace.perform("train-classifier", first);
+        workspace.perform("train-classifier", second);
+        List<DecisionTreeExtension.TableInstance> queries = TestSupport.irisQueries(rows, new Random(1), 1000);
+        TestSupport.Workspace imported = new TestSupport.Workspace();
+        imported.extension.importWorld(TestSupport.exportedLines(workspace.extension), null, null);
+        DecisionTreeExtension.SharedDataset imported_dataset = (DecisionTreeExtension.SharedDataset)
+                imported.extension.readExtensionObject(null, "dataset", dataset.dump(true, true, true));
+        System.out.println("Imported distinct rows: " + imported_dataset.numRows() + ", users " + imported_dataset.users());
+        TestSupport.check(imported_dataset.numRows() == distinct, "The imported dataset has other rows");
+        TestSupport.check(imported_dataset.users().equals(dataset.users()), "The imported dataset is used by other classifiers");
+        for (DecisionTreeExtension.J48Classifier classifier : new DecisionTreeExtension.J48Classifier[]{first, second})
+        {
+            DecisionTreeExtension.J48Classifier copy = (DecisionTreeExtension.J48Classifier)
+                    imported.extension.readExtensionObject(null, "classifier", classifier.dump(true, true, true));
+            TestSupport.check(copy.numInstances() == classifier.numInstances(), "The imported classifier has other rows");
+            TestSupport.check(TestSupport.mismatches(classifier, copy, queries) == 0, "The imported classifier predicts differently");
+        }
+
+        // The rows only the first classifier keeps are freed when it is cleared, the others when both are
+        workspace.perform("clear-classifier", first);
+        System.out.println("Distinct rows after clearing the first classifier: " + dataset.numRows());
+        TestSupport.check(dataset.numRows() == distinctRows(new Instances(iris, 0, 100)), "Clearing a classifier did not free its rows");
+        workspace.perform("clear-classifier", second);
+        TestSupport.check(dataset.numRows() == 0, "Clearing every classifier did not empty the dataset");
+
+        // The rows a training policy drops are freed
+        workspace.perform("set-training-policy", first, "window", 10.0);
+        TestSupport.addIris(first, rows, iris);
+        System.out.println("Distinct rows with a window of 10: " + dataset.numRows());
+        TestSupport.check(dataset.numRows() <= 10, "The rows dropped by the training policy stay in the dataset");
+        workspace.perform("set-training-policy", first, "unbounded", 0.0);
+        TestSupport.check(dataset.numRows() == distinctRows(new Instances(iris, iris.numInstances() - 10, 10)),
+                "Changing the training policy changed the use counts of the rows");
+    }
+
+    static int distinctRows(Instances data)
+    {
+        HashSet<String> distinct = new HashSet<String>();
+        for (int i = 0; i < data.numInstances(); i++)
+            distinct.add(Arrays.toString(data.instance(i).toDoubleArray()));
+        return distinct.size();
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import org.nlogo.api.Argument;
+import org.nlogo.api.Command;
+import org.nlogo.api.Context;
+import org.nlogo.api.LogoListBuilder;
+import org.nlogo.api.MersenneTwisterFast;
+import org.nlogo.api.Primitive;
+import org.nlogo.api.PrimitiveManager;
+import org.nlogo.api.Reporter;
+import org.nlogo.core.LogoList;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ConverterUtils.DataSource;
+
+/**
+ * Fixtures and checks shared by the tests. Every test is a class whose main method throws an AssertionError
+ * when a check fails. Running this class with the names of the tests runs all of them and exits with an error
+ * if any failed, which is how the test target of build.xml fails the build.
+ */
+public class TestSupport
+{
+    static final String[] IRIS_ATTRIBUTES = {"sepallength", "sepalwidth", "petallength", "petalwidth", "class"};
+    static final String[] IRIS_CLASSES = {"Iris-setosa", "Iris-versicolor", "Iris-virginica"};
+
+    public static void main(String[] args) throws Exception
+    {
+        List<String> failed = new ArrayList<String>();
+        for (String name : args)
+        {
+            System.out.println("== " + name);
+            try {
+                Class.forName(name).getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+            } catch (InvocationTargetException e) {
+                e.getCause().printStackTrace(System.out);
+                failed.add(name);
+            }
+        }
+        System.out.println((args.length - failed.size()) + " of " + args.length + " tests passed"
+                + (failed.isEmpty() ? "" : ", failed: " + failed));
+        if (!failed.isEmpty())
+            System.exit(1);
+    }
+
+    static void check(boolean condition, String message)
+    {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    static LogoList list(Object... items)
+    {
+        LogoListBuilder builder = new LogoListBuilder();
+        for (Object item : items)
+            builder.add(item);
+        return builder.toLogoList();
+    }
+
+    /**
+     * Returns the attribute types of a classifier with the given number of numeric attributes followed by a
+     * nominal class with the given values.
+     */
+    static LogoList types(int num_numeric, String... class_values)
+    {
+        LogoListBuilder builder = new LogoListBuilder();
+        for (int i = 0; i < num_numeric; i++)
+            builder.add(list());
+        builder.add(list((Object[]) class_values));
+        return builder.toLogoList();
+    }
+
+    /**
+     * Creates a classifier whose last attribute is the class, with the given values, and the others numeric.
+     */
+    static DecisionTreeExtension.J48Classifier newClassifier(DecisionTreeExtension.Registry registry, String[] names,
+                                                             String... class_values) throws Exception
+    {
+        return new DecisionTreeExtension.J48Classifier(registry, list((Object[]) names),
+                types(names.length - 1, class_values), names.length - 1);
+    }
+
+    static Instances iris() throws Exception
+    {
+        return new DataSource("sample/iris.arff").getDataSet();
+    }
+
+    static DecisionTreeExtension.J48Classifier irisClassifier(DecisionTreeExtension.Registry registry) throws Exception
+    {
+        return newClassifier(registry, IRIS_ATTRIBUTES, IRIS_CLASSES);
+    }
+
+    static DecisionTreeExtension.TableInstance irisInstance(DecisionTreeExtension.Registry registry, Instance row)
+    {
+        DecisionTreeExtension.TableInstance instance = new DecisionTreeExtension.TableInstance(registry);
+        for (int j = 0; j < 4; j++)
+            instance.put(IRIS_ATTRIBUTES[j], row.value(j));
+        instance.put(IRIS_ATTRIBUTES[4], row.stringValue(4));
+        return instance;
+    }
+
+    static void addIris(DecisionTreeExtension.J48Classifier classifier, DecisionTreeExtension.Registry registry, Instances iris) throws Exception
+    {
+        for (int i = 0; i < iris.numInstances(); i++)
+            classifier.add(irisInstance(registry, iris.instance(i)).getWekaInstance(classifier.attributes()));
+    }
+
+    /**
+     * Returns random iris queries, with about one in ten of their values missing.
+     */
+    static List<DecisionTreeExtension.TableInstance> irisQueries(DecisionTreeExtension.Registry registry, Random random, int n)
+    {
+        List<DecisionTreeExtension.TableInstance> queries = new ArrayList<DecisionTreeExtension.TableInstance>(n);
+        for (int i = 0; i < n; i++)
+        {
+            DecisionTreeExtension.TableInstance query = new DecisionTreeExtension.TableInstance(registry);
+            for (int j = 0; j < 4; j++)
+                if (random.nextInt(10) != 0)
+                    query.put(IRIS_ATTRIBUTES[j], random.nextDouble() * 8.0);
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    /**
+     * Returns the number of queries the classifiers predict differently.
+     */
+    static int mismatches(DecisionTreeExtension.J48Classifier expected, DecisionTreeExtension.J48Classifier actual,
+                          List<DecisionTreeExtension.TableInstance> queries) throws Exception
+    {
+        int mismatches = 0;
+        for (DecisionTreeExtension.TableInstance query : queries)
+            if (!expected.classify(query).equals(actual.classify(query)))
+                mismatches++;
+        return mismatches;
+    }
+
+    /**
+     * Returns the lines written by exportWorld(), each one the text of its single CSV field, as importWorld()
+     * reads them.
+     */
+    static List<String[]> exportedLines(DecisionTreeExtension extension)
+    {
+        List<String[]> lines = new ArrayList<String[]>();
+        for (String line : extension.exportWorld().toString().split("\n"))
+            lines.add(new String[]{line.substring(1, line.length() - 1).replace("\"\"", "\"")});
+        return lines;
+    }
+
+    /**
+     * The extension loaded the way NetLogo loads it, whose primitives are called by name. Paths are relative to
+     * the working directory, and the random numbers come from a fixed seed.
+     */
+    static class Workspace
+    {
+        final DecisionTreeExtension extension = new DecisionTreeExtension();
+        private final HashMap<String, Primitive> primitives = new HashMap<String, Primitive>();
+        private final MersenneTwisterFast random = new MersenneTwisterFast();
+        private final Context context = proxy(Context.class, (method, args) -> {
+            switch (method.getName())
+            {
+                case "attachCurrentDirectory":
+                case "attachModelDir":
+                    return new File((String) args[0]).getAbsolutePath();
+                case "getRNG":
+                    return random;
+                default:
+                    return null;
+            }
+        });
+
+        Workspace()
+        {
+            random.setSeed(1);
+            extension.load(proxy(PrimitiveManager.class, (method, args) -> {
+                primitives.put((String) args[0], (Primitive) args[1]);
+                return null;
+            }));
+        }
+
+        /**
+         * Creates an iris classifier with make-classifier, so it belongs to the workspace.
+         */
+        DecisionTreeExtension.J48Classifier irisClassifier() throws Exception
+        {
+            return (DecisionTreeExtension.J48Classifier) report("make-classifier", list((Object[]) IRIS_ATTRIBUTES),
+                    types(IRIS_ATTRIBUTES.length - 1, IRIS_CLASSES), (double) (IRIS_ATTRIBUTES.length - 1));
+        }
+
+        Object report(String name, Object... values) throws Exception
+        {
+            return ((Reporter) primitive(name)).report(arguments(values), context);
+        }
+
+        void perform(String name, Object... values) throws Exception
+        {
+            ((Command) primitive(name)).perform(arguments(values), context);
+        }
+
+        private Primitive primitive(String name)
+        {
+            Primitive primitive = primitives.get(name);
+            if (primitive == null)
+                throw new IllegalArgumentException("No primitive " + name);
+            return primitive;
+        }
+    }
+
+    private static Argument[] arguments(Object... values)
+    {
+        Argument[] arguments = new Argument[values.length];
+        for (int i = 0; i < values.length; i++)
+        {
+            final Object value = values[i];
+            arguments[i] = proxy(Argument.class, (method, args) -> {
+                switch (method.getName())
+                {
+                    case "getIntValue":
+                        return ((Number) value).intValue();
+                    case "getDoubleValue":
+                        return ((Number) value).doubleValue();
+                    default:
+                        return value;
+                }
+            });
+        }
+        return arguments;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, BiFunction<Method, Object[], Object> handler)
+    {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class)
+            {
+                switch (method.getName())
+                {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return type.getSimpleName();
+                }
+            }
+            return handler.apply(method, args);
+        });
+    }
+}
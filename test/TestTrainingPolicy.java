@@ -0,0 +1,73 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+public class TestTrainingPolicy
+{
+    static final String[] NAMES = {"x", "y", "class"};
+    static final String[] CLASSES = {"a", "b", "c"};
+
+    public static void main(String[] args) throws Exception
+    {
+        int capacity = 100;
+        for (String policy : new String[]{"window", "reservoir", "stratified"})
+        {
+            DecisionTreeExtension.Registry registry = new DecisionTreeExtension.Registry();
+            DecisionTreeExtension.J48Classifier classifier = TestSupport.newClassifier(registry, NAMES, CLASSES);
+            Attribute class_attribute = classifier.attributes().get(2);
+            classifier.setTrainingPolicy(new DecisionTreeExtension.TrainingPolicy(policy, capacity, class_attribute, new Random(1)));
+
+            // The stratified policy keeps up to the capacity of each class
+            int bound = policy.equals("stratified") ? capacity * CLASSES.length : capacity;
+            Random random = new Random(2);
+            double[][] added = new double[20 * capacity][];
+            int max_rows = 0;
+            for (int n = 0; n < added.length; n++)
+            {
+                DecisionTreeExtension.TableInstance instance = new DecisionTreeExtension.TableInstance(registry);
+                double x = random.nextGaussian();
+                double y = random.nextGaussian();
+                instance.put("x", x);
+                instance.put("y", y);
+                instance.put("class", CLASSES[x + y > 1 ? 0 : x > 0 ? 1 : 2]);
+                Instance row = instance.getWekaInstance(classifier.attributes());
+                added[n] = row.toDoubleArray();
+                classifier.add(row);
+                max_rows = Math.max(max_rows, classifier.numInstances());
+                if (n % 97 == 0)
+                    classifier.train();
+            }
+            classifier.train();
+
+            Instances kept = classifier.trainingData();
+            int[] per_class = new int[CLASSES.length];
+            for (int i = 0; i < kept.numInstances(); i++)
+                per_class[(int) kept.instance(i).classValue()]++;
+            boolean bounded = max_rows <= bound;
+            for (int count : per_class)
+                bounded &= !policy.equals("stratified") || count <= capacity;
+
+            // The window keeps exactly the last rows, whatever slots they are in
+            boolean kept_last = true;
+            if (policy.equals("window"))
+            {
+                HashSet<String> last = new HashSet<String>();
+                for (int n = added.length - capacity; n < added.length; n++)
+                    last.add(Arrays.toString(added[n]));
+                for (int i = 0; i < kept.numInstances(); i++)
+                    kept_last &= last.contains(Arrays.toString(kept.instance(i).toDoubleArray()));
+                kept_last &= kept.numInstances() == capacity;
+            }
+
+            System.out.println(policy + ": at most " + max_rows + " rows of " + bound + ", per class "
+                    + Arrays.toString(per_class) + (policy.equals("window") ? ", last rows kept: " + kept_last : ""));
+            TestSupport.check(bounded, "The " + policy + " policy kept more rows than its capacity");
+            TestSupport.check(kept_last, "The window policy did not keep the last rows");
+            TestSupport.check(classifier.modelVersion() != 0, "The " + policy + " policy left the classifier untrained");
+        }
+    }
+}